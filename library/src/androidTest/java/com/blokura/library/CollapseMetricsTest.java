@@ -0,0 +1,218 @@
+package com.blokura.library;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableString;
+import android.text.style.StyleSpan;
+import android.view.View;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static android.graphics.Typeface.BOLD;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class CollapseMetricsTest {
+
+    private static final int WIDTH_PX = 480;
+    private static final int VISIBLE_LINES = 3;
+    private static final String SHORT_TEXT = "Lorem ipsum dolor sit amet";
+    private static final String LONG_TEXT = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod "
+        + "tempor incididunt ut labore et dolore magna aliqua. Ut enim ad minim veniam, quis nostrud exercitation "
+        + "ullamco laboris nisi ut aliquip ex ea commodo consequat. Duis aute irure dolor in reprehenderit in "
+        + "voluptate velit esse cillum dolore eu fugiat nulla pariatur. Excepteur sint occaecat cupidatat non "
+        + "proident, sunt in culpa qui officia deserunt mollit anim id est laborum.";
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        CollapseMetrics.clearCache();
+    }
+
+    @Test
+    public void precomputeKeepsInputOrder() {
+        final CollapseMetrics.Style style = styleOf(newView());
+        final SpannableString spanned = new SpannableString(LONG_TEXT);
+        spanned.setSpan(new StyleSpan(BOLD), 0, 5, 0);
+
+        final List<CharSequence> texts = new ArrayList<>();
+        final int chunks = Runtime.getRuntime().availableProcessors() + 1;
+        for (int i = 0; i < chunks; i++) {
+            texts.add(null);
+            texts.add("");
+            texts.add(spanned);
+            texts.add(SHORT_TEXT);
+            texts.add(LONG_TEXT.substring(0, LONG_TEXT.length() * (i + 1) / chunks));
+        }
+
+        final List<CollapseMetrics> results = CollapseMetrics.precompute(style, texts, WIDTH_PX);
+
+        assertEquals(texts.size(), results.size());
+        for (int i = 0; i < texts.size(); i++) {
+            final CollapseMetrics expected =
+                CollapseMetrics.precompute(style, Collections.singletonList(texts.get(i)), WIDTH_PX).get(0);
+            assertSameMetrics(expected, results.get(i));
+        }
+        assertEquals(0, results.get(0).getCollapsedHeight());
+        assertEquals(0, results.get(1).getCollapsedHeight());
+        assertTrue(results.get(2).isOverflowing());
+    }
+
+    @Test
+    public void spannedTextsAreNotCached() {
+        final CollapsibleTextView view = newView();
+        final SpannableString spanned = new SpannableString(LONG_TEXT);
+        spanned.setSpan(new StyleSpan(BOLD), 0, 5, 0);
+
+        CollapseMetrics.precompute(styleOf(view), Collections.<CharSequence>singletonList(spanned), WIDTH_PX);
+
+        assertNull(findOnMainThread(view, spanned));
+    }
+
+    @Test
+    public void metricsMatchMeasureOfShortText() {
+        final CollapsibleTextView view = measuredView(SHORT_TEXT);
+        final CollapseMetrics metrics = precomputeOne(SHORT_TEXT);
+
+        assertFalse(metrics.isOverflowing());
+        assertFalse(view.isClickable());
+        assertEquals(view.getBodyTextView().getMeasuredHeight(), metrics.getTextHeightWithMaxLines());
+        assertEquals(view.getMeasuredHeight(), metrics.getCollapsedHeight());
+    }
+
+    @Test
+    public void metricsMatchMeasureOfOverflowingText() {
+        final CollapsibleTextView view = measuredView(LONG_TEXT);
+        final CollapseMetrics metrics = precomputeOne(LONG_TEXT);
+
+        assertTrue(metrics.isOverflowing());
+        assertTrue(view.isClickable());
+        assertEquals(view.getTextHeightWithMaxLines(), metrics.getTextHeightWithMaxLines());
+        assertEquals(view.getMeasuredHeight(), metrics.getCollapsedHeight());
+    }
+
+    @Test
+    public void metricsMatchMeasureOfTextWithFallbackGlyphs() {
+        final String text = LONG_TEXT + " \uD83D\uDE00 \u6F22\u5B57 " + LONG_TEXT;
+        final CollapsibleTextView view = measuredView(text);
+        final CollapseMetrics metrics = precomputeOne(text);
+
+        assertTrue(metrics.isOverflowing());
+        assertEquals(view.getTextHeightWithMaxLines(), metrics.getTextHeightWithMaxLines());
+        assertEquals(view.getMeasuredHeight(), metrics.getCollapsedHeight());
+    }
+
+    @Test
+    public void styleSnapshotIsRebuiltAfterStyleChange() {
+        final CollapsibleTextView view = newView();
+        final CollapseMetrics.Style style = styleOf(view);
+
+        assertSame(style, styleOf(view));
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                view.setTextSize(30);
+            }
+        });
+
+        assertNotSame(style, styleOf(view));
+        assertNotEquals(style, styleOf(view));
+    }
+
+    @Test
+    public void cachedMeasureMatchesUncachedMeasure() {
+        for (String text : new String[]{SHORT_TEXT, LONG_TEXT}) {
+            CollapseMetrics.clearCache();
+            final CollapsibleTextView uncached = measuredView(text);
+
+            precomputeOne(text);
+            final CollapsibleTextView cached = newView();
+            assertNotNull(findOnMainThread(cached, text));
+            measure(cached, text);
+
+            assertEquals(uncached.getMeasuredHeight(), cached.getMeasuredHeight());
+            assertEquals(uncached.isClickable(), cached.isClickable());
+            assertEquals(uncached.getExpandView().getVisibility(), cached.getExpandView().getVisibility());
+            assertEquals(uncached.getGradientView().getVisibility(), cached.getGradientView().getVisibility());
+            assertEquals(uncached.getTextHeightWithMaxLines(), cached.getTextHeightWithMaxLines());
+        }
+    }
+
+    private CollapseMetrics precomputeOne(String text) {
+        return CollapseMetrics.precompute(styleOf(newView()), Collections.singletonList(text), WIDTH_PX).get(0);
+    }
+
+    private CollapsibleTextView newView() {
+        final AtomicReference<CollapsibleTextView> view = new AtomicReference<>();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                final CollapsibleTextView collapsibleTextView = new CollapsibleTextView(context);
+                collapsibleTextView.setVisibleLineCount(VISIBLE_LINES);
+                view.set(collapsibleTextView);
+            }
+        });
+        return view.get();
+    }
+
+    private CollapsibleTextView measuredView(String text) {
+        final CollapsibleTextView view = newView();
+        measure(view, text);
+        return view;
+    }
+
+    private void measure(final CollapsibleTextView view, final String text) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                view.setText(text);
+                view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH_PX, View.MeasureSpec.EXACTLY),
+                             View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED));
+            }
+        });
+    }
+
+    private CollapseMetrics.Style styleOf(final CollapsibleTextView view) {
+        final AtomicReference<CollapseMetrics.Style> style = new AtomicReference<>();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                style.set(CollapseMetrics.Style.of(view));
+            }
+        });
+        return style.get();
+    }
+
+    private CollapseMetrics findOnMainThread(final CollapsibleTextView view, final CharSequence text) {
+        final AtomicReference<CollapseMetrics> metrics = new AtomicReference<>();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                metrics.set(CollapseMetrics.find(view, text, WIDTH_PX));
+            }
+        });
+        return metrics.get();
+    }
+
+    private static void assertSameMetrics(CollapseMetrics expected, CollapseMetrics actual) {
+        assertEquals(expected.isOverflowing(), actual.isOverflowing());
+        assertEquals(expected.getCollapsedHeight(), actual.getCollapsedHeight());
+        assertEquals(expected.getTextHeightWithMaxLines(), actual.getTextHeightWithMaxLines());
+    }
+}
@@ -0,0 +1,514 @@
+package com.blokura.library;
+
+import android.annotation.TargetApi;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.os.Build;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.util.LruCache;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collapse metrics of a text laid out by a {@link CollapsibleTextView} at a given width.
+ * <p>
+ * Take a {@link Style} snapshot of a view on the main thread, then use {@link #precompute(Style, List, int)} to
+ * compute the metrics of a whole page of texts in parallel before binding. Views bound afterwards with the same
+ * style, text and width pick the cached result up in {@code onMeasure} and skip the measure pass used to detect the
+ * overflow.
+ */
+public final class CollapseMetrics {
+
+    private static final int CACHE_SIZE = 512;
+    private static final int POOL_SIZE = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final long POOL_KEEP_ALIVE_SECONDS = 1;
+    private static final LruCache<Key, CollapseMetrics> CACHE = new LruCache<>(CACHE_SIZE);
+    private static ThreadPoolExecutor executor;
+
+    private final boolean overflowing;
+    private final int collapsedHeight;
+    private final int textHeightWithMaxLines;
+
+    private CollapseMetrics(boolean overflowing, int collapsedHeight, int textHeightWithMaxLines) {
+        this.overflowing = overflowing;
+        this.collapsedHeight = collapsedHeight;
+        this.textHeightWithMaxLines = textHeightWithMaxLines;
+    }
+
+    /**
+     * @return true if the text has more lines than the visible line count, so the view shows the expand button
+     */
+    public boolean isOverflowing() {
+        return overflowing;
+    }
+
+    /**
+     * @return the height of the whole view while collapsed, or its full height if the text is not overflowing
+     */
+    public int getCollapsedHeight() {
+        return collapsedHeight;
+    }
+
+    /**
+     * @return the height of the body text with all of its lines visible, including the text view paddings
+     */
+    public int getTextHeightWithMaxLines() {
+        return textHeightWithMaxLines;
+    }
+
+    //region PRECOMPUTATION
+    /**
+     * Computes the metrics of every text as laid out by a view with {@code style} at {@code widthPx}. The work is
+     * split across the available cores, the calling thread included, and blocks until every result is ready.
+     * <p>
+     * Results of plain (non {@link Spanned}) texts are cached and used by views bound later with the same style
+     * and width.
+     *
+     * @param style   snapshot of the view the texts will be bound to
+     * @param texts   texts to measure
+     * @param widthPx width of the {@link CollapsibleTextView}, in pixels
+     * @return the metrics of each text, in the same order as {@code texts}
+     */
+    @WorkerThread
+    @NonNull
+    public static List<CollapseMetrics> precompute(@NonNull Style style, @NonNull List<? extends CharSequence> texts,
+                                                   int widthPx) {
+        if (widthPx <= 0) {
+            throw new IllegalArgumentException("Width must be a positive value");
+        }
+        if (texts.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final CollapseMetrics[] results = new CollapseMetrics[texts.size()];
+        final int chunkCount = Math.min(POOL_SIZE, texts.size());
+        final int chunkSize = (texts.size() + chunkCount - 1) / chunkCount;
+
+        // The first chunk runs on the calling thread, the rest on the pool
+        final List<Future<?>> futures = new ArrayList<>(chunkCount - 1);
+        for (int start = chunkSize; start < texts.size(); start += chunkSize) {
+            final int end = Math.min(start + chunkSize, texts.size());
+            futures.add(getExecutor().submit(new ComputeTask(style, texts, widthPx, results, start, end)));
+        }
+        new ComputeTask(style, texts, widthPx, results, 0, Math.min(chunkSize, texts.size())).call();
+
+        boolean interrupted = false;
+        try {
+            for (Future<?> future : futures) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to compute collapse metrics", e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Drops every cached result.
+     */
+    public static void clearCache() {
+        CACHE.evictAll();
+    }
+
+    @MainThread
+    @Nullable
+    static CollapseMetrics find(@NonNull CollapsibleTextView view, @Nullable CharSequence text, int widthPx) {
+        if (!isCacheable(text) || CACHE.size() == 0) {
+            return null;
+        }
+        return CACHE.get(new Key(view.getMetricsStyle(), text.toString(), widthPx));
+    }
+
+    private static boolean isCacheable(@Nullable CharSequence text) {
+        return !TextUtils.isEmpty(text) && !(text instanceof Spanned);
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, POOL_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                              new LinkedBlockingQueue<Runnable>(), new MetricsThreadFactory());
+            // Idle threads die, a view library should not keep a thread per core alive
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    @NonNull
+    private static CollapseMetrics compute(@NonNull Style style, @NonNull TextPaint paint,
+                                           @Nullable CharSequence text, int widthPx) {
+        if (TextUtils.isEmpty(text)) {
+            // Empty texts hide the view
+            return new CollapseMetrics(false, 0, 0);
+        }
+
+        final int layoutWidth = Math.max(0, widthPx - style.horizontalInsets);
+        final Layout layout = buildLayout(style, paint, text, layoutWidth);
+        final int lineCount = layout.getLineCount();
+        final int textHeightWithMaxLines = layout.getLineTop(lineCount) + style.bodyPaddingVertical;
+
+        if (lineCount <= style.visibleLineCount) {
+            return new CollapseMetrics(false, style.verticalInsets + textHeightWithMaxLines, textHeightWithMaxLines);
+        }
+
+        final int collapsedTextHeight = getCollapsedTextHeight(style, paint, text, layoutWidth, layout);
+        final int collapsedHeight = style.verticalInsets + collapsedTextHeight + style.decorationHeight;
+        return new CollapseMetrics(true, collapsedHeight, textHeightWithMaxLines);
+    }
+
+    /**
+     * The collapsed body is an ellipsized layout whose last line is the last visible one, so that line gets the
+     * bottom font padding and, from Lollipop on, no extra line spacing. Cutting the full layout is not enough.
+     */
+    private static int getCollapsedTextHeight(@NonNull Style style, @NonNull TextPaint paint,
+                                              @NonNull CharSequence text, int width, @NonNull Layout fullLayout) {
+        if (style.visibleLineCount <= 0) {
+            return style.bodyPaddingVertical;
+        }
+        if (style.ellipsize == null) {
+            // Without ellipsize the TextView keeps the full layout and shows its first lines
+            return fullLayout.getLineTop(style.visibleLineCount) + style.bodyPaddingVertical;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            final Layout collapsedLayout = buildCollapsedLayoutV23(style, paint, text, width);
+            return collapsedLayout.getLineTop(collapsedLayout.getLineCount()) + style.bodyPaddingVertical;
+        }
+
+        final int lastVisibleLine = style.visibleLineCount - 1;
+        final int bottomPadding = style.includeFontPadding ? style.fontBottom - style.fontDescent : 0;
+        final int textHeight;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            textHeight = fullLayout.getLineBaseline(lastVisibleLine) + style.fontDescent + bottomPadding;
+        } else {
+            // Before Lollipop the last line keeps its extra spacing
+            textHeight = fullLayout.getLineTop(style.visibleLineCount) + bottomPadding;
+        }
+        return textHeight + style.bodyPaddingVertical;
+    }
+
+    @NonNull
+    private static Layout buildLayout(@NonNull Style style, @NonNull TextPaint paint, @NonNull CharSequence text,
+                                      int width) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return newLayoutBuilderV23(style, paint, text, width).build();
+        }
+        return new StaticLayout(text, paint, width, Layout.Alignment.ALIGN_NORMAL, style.lineSpacingMultiplier,
+                                style.lineSpacingExtra, style.includeFontPadding);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    @NonNull
+    private static Layout buildCollapsedLayoutV23(@NonNull Style style, @NonNull TextPaint paint,
+                                                  @NonNull CharSequence text, int width) {
+        return newLayoutBuilderV23(style, paint, text, width)
+            .setMaxLines(style.visibleLineCount)
+            .setEllipsize(style.ellipsize)
+            .setEllipsizedWidth(width)
+            .build();
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    @NonNull
+    private static StaticLayout.Builder newLayoutBuilderV23(@NonNull Style style, @NonNull TextPaint paint,
+                                                            @NonNull CharSequence text, int width) {
+        final StaticLayout.Builder builder =
+            StaticLayout.Builder.obtain(text, 0, text.length(), paint, width)
+                                .setAlignment(Layout.Alignment.ALIGN_NORMAL)
+                                .setLineSpacing(style.lineSpacingExtra, style.lineSpacingMultiplier)
+                                .setIncludePad(style.includeFontPadding)
+                                .setBreakStrategy(style.breakStrategy)
+                                .setHyphenationFrequency(style.hyphenationFrequency);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            setFallbackLineSpacingV28(builder, style);
+        }
+        return builder;
+    }
+
+    @TargetApi(Build.VERSION_CODES.P)
+    private static void setFallbackLineSpacingV28(@NonNull StaticLayout.Builder builder, @NonNull Style style) {
+        // TextViews of apps targeting P use the line heights of fallback fonts (emoji, CJK...), builders do not
+        builder.setUseLineSpacingFromFallbacks(style.fallbackLineSpacing);
+    }
+    //endregion
+
+    private static class ComputeTask implements Callable<Void> {
+
+        private final Style style;
+        private final List<? extends CharSequence> texts;
+        private final int widthPx;
+        private final CollapseMetrics[] results;
+        private final int start;
+        private final int end;
+
+        private ComputeTask(Style style, List<? extends CharSequence> texts, int widthPx, CollapseMetrics[] results,
+                            int start, int end) {
+            this.style = style;
+            this.texts = texts;
+            this.widthPx = widthPx;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public Void call() {
+            // Layouts mutate the paint while measuring, every task works on its own copy of the snapshot
+            final TextPaint paint = new TextPaint(style.paint);
+            for (int i = start; i < end; i++) {
+                final CharSequence text = texts.get(i);
+                final CollapseMetrics metrics = compute(style, paint, text, widthPx);
+                if (isCacheable(text)) {
+                    CACHE.put(new Key(style, text.toString(), widthPx), metrics);
+                }
+                results[i] = metrics;
+            }
+            return null;
+        }
+    }
+
+    private static class MetricsThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            final Thread thread = new Thread(runnable, "ctv-metrics-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Immutable snapshot of everything in a {@link CollapsibleTextView} that affects its collapse metrics. Take it
+     * on the main thread, it can then be used from any thread.
+     */
+    public static final class Style {
+
+        private final TextPaint paint;
+        private final float textSize;
+        private final float textScaleX;
+        private final float textSkewX;
+        private final int paintFlags;
+        private final Typeface typeface;
+        private final Locale textLocale;
+        private final float letterSpacing;
+        private final String fontFeatureSettings;
+        private final int fontDescent;
+        private final int fontBottom;
+        private final float lineSpacingExtra;
+        private final float lineSpacingMultiplier;
+        private final boolean includeFontPadding;
+        private final TextUtils.TruncateAt ellipsize;
+        private final int breakStrategy;
+        private final int hyphenationFrequency;
+        private final boolean fallbackLineSpacing;
+        private final int visibleLineCount;
+        private final int horizontalInsets;
+        private final int verticalInsets;
+        private final int bodyPaddingVertical;
+        private final int decorationHeight;
+        private final int hash;
+
+        private Style(@NonNull CollapsibleTextView view) {
+            final TextView body = view.getBodyTextView();
+            paint = new TextPaint(body.getPaint());
+            textSize = paint.getTextSize();
+            textScaleX = paint.getTextScaleX();
+            textSkewX = paint.getTextSkewX();
+            paintFlags = paint.getFlags();
+            typeface = paint.getTypeface();
+            textLocale = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 ? paint.getTextLocale()
+                : Locale.getDefault();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                letterSpacing = paint.getLetterSpacing();
+                fontFeatureSettings = paint.getFontFeatureSettings();
+            } else {
+                letterSpacing = 0f;
+                fontFeatureSettings = null;
+            }
+            final Paint.FontMetricsInt fontMetrics = paint.getFontMetricsInt();
+            fontDescent = fontMetrics.descent;
+            fontBottom = fontMetrics.bottom;
+            lineSpacingExtra = body.getLineSpacingExtra();
+            lineSpacingMultiplier = body.getLineSpacingMultiplier();
+            includeFontPadding = body.getIncludeFontPadding();
+            ellipsize = body.getEllipsize();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                breakStrategy = body.getBreakStrategy();
+                hyphenationFrequency = body.getHyphenationFrequency();
+            } else {
+                breakStrategy = 0;
+                hyphenationFrequency = 0;
+            }
+            fallbackLineSpacing = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && body.isFallbackLineSpacing();
+            visibleLineCount = view.getVisibleLineCount();
+
+            final ViewGroup.MarginLayoutParams bodyParams = (ViewGroup.MarginLayoutParams) body.getLayoutParams();
+            horizontalInsets = view.getPaddingLeft() + view.getPaddingRight()
+                + bodyParams.leftMargin + bodyParams.rightMargin
+                + body.getCompoundPaddingLeft() + body.getCompoundPaddingRight();
+            verticalInsets = view.getPaddingTop() + view.getPaddingBottom()
+                + bodyParams.topMargin + bodyParams.bottomMargin;
+            bodyPaddingVertical = body.getCompoundPaddingTop() + body.getCompoundPaddingBottom();
+            decorationHeight = getDecorationHeight(view.getGradientView()) + getDecorationHeight(view.getExpandView());
+            hash = computeHash();
+        }
+
+        /**
+         * @param view a view holding the style the texts will be bound with
+         * @return a snapshot of the current style of {@code view}
+         */
+        @MainThread
+        @NonNull
+        public static Style of(@NonNull CollapsibleTextView view) {
+            return view.getMetricsStyle();
+        }
+
+        @MainThread
+        @NonNull
+        static Style capture(@NonNull CollapsibleTextView view) {
+            return new Style(view);
+        }
+
+        private static int getDecorationHeight(@NonNull View decoration) {
+            final ViewGroup.MarginLayoutParams params = (ViewGroup.MarginLayoutParams) decoration.getLayoutParams();
+            int height = params.height;
+            if (height < 0) {
+                decoration.measure(View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED),
+                                   View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED));
+                height = decoration.getMeasuredHeight();
+            }
+            return height + params.topMargin + params.bottomMargin;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Style style = (Style) o;
+            return hash == style.hash
+                && Float.compare(style.textSize, textSize) == 0
+                && Float.compare(style.textScaleX, textScaleX) == 0
+                && Float.compare(style.textSkewX, textSkewX) == 0
+                && paintFlags == style.paintFlags
+                && Float.compare(style.letterSpacing, letterSpacing) == 0
+                && fontDescent == style.fontDescent
+                && fontBottom == style.fontBottom
+                && Float.compare(style.lineSpacingExtra, lineSpacingExtra) == 0
+                && Float.compare(style.lineSpacingMultiplier, lineSpacingMultiplier) == 0
+                && includeFontPadding == style.includeFontPadding
+                && ellipsize == style.ellipsize
+                && breakStrategy == style.breakStrategy
+                && hyphenationFrequency == style.hyphenationFrequency
+                && fallbackLineSpacing == style.fallbackLineSpacing
+                && visibleLineCount == style.visibleLineCount
+                && horizontalInsets == style.horizontalInsets
+                && verticalInsets == style.verticalInsets
+                && bodyPaddingVertical == style.bodyPaddingVertical
+                && decorationHeight == style.decorationHeight
+                && (typeface != null ? typeface.equals(style.typeface) : style.typeface == null)
+                && (textLocale != null ? textLocale.equals(style.textLocale) : style.textLocale == null)
+                && TextUtils.equals(fontFeatureSettings, style.fontFeatureSettings);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        private int computeHash() {
+            int result = Float.floatToIntBits(textSize);
+            result = 31 * result + Float.floatToIntBits(textScaleX);
+            result = 31 * result + Float.floatToIntBits(textSkewX);
+            result = 31 * result + paintFlags;
+            result = 31 * result + (typeface != null ? typeface.hashCode() : 0);
+            result = 31 * result + (textLocale != null ? textLocale.hashCode() : 0);
+            result = 31 * result + Float.floatToIntBits(letterSpacing);
+            result = 31 * result + (fontFeatureSettings != null ? fontFeatureSettings.hashCode() : 0);
+            result = 31 * result + fontDescent;
+            result = 31 * result + fontBottom;
+            result = 31 * result + Float.floatToIntBits(lineSpacingExtra);
+            result = 31 * result + Float.floatToIntBits(lineSpacingMultiplier);
+            result = 31 * result + (includeFontPadding ? 1 : 0);
+            result = 31 * result + (ellipsize != null ? ellipsize.hashCode() : 0);
+            result = 31 * result + breakStrategy;
+            result = 31 * result + hyphenationFrequency;
+            result = 31 * result + (fallbackLineSpacing ? 1 : 0);
+            result = 31 * result + visibleLineCount;
+            result = 31 * result + horizontalInsets;
+            result = 31 * result + verticalInsets;
+            result = 31 * result + bodyPaddingVertical;
+            result = 31 * result + decorationHeight;
+            return result;
+        }
+    }
+
+    private static class Key {
+
+        private final Style style;
+        private final String text;
+        private final int widthPx;
+
+        private Key(Style style, String text, int widthPx) {
+            this.style = style;
+            this.text = text;
+            this.widthPx = widthPx;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return widthPx == key.widthPx && style.equals(key.style) && text.equals(key.text);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = style.hashCode();
+            result = 31 * result + text.hashCode();
+            result = 31 * result + widthPx;
+            return result;
+        }
+    }
+}
@@ -4,10 +4,12 @@ import android.animation.Animator;
 import android.animation.AnimatorSet;
 import android.animation.ObjectAnimator;
 import android.animation.ValueAnimator;
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.ColorStateList;
 import android.content.res.TypedArray;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.support.annotation.ColorInt;
 import android.support.annotation.DimenRes;
 import android.support.annotation.DrawableRes;
@@ -90,6 +92,13 @@ public class CollapsibleTextView extends LinearLayout implements View.OnClickLis
     private boolean hasChanged;
     //endregion
 
+    //region METRICS
+    /**
+     * Snapshot of the style used to look precomputed metrics up, rebuilt lazily after a style change
+     */
+    private CollapseMetrics.Style metricsStyle;
+    //endregion
+
     public CollapsibleTextView(Context context) {
         this(context, null);
     }
@@ -238,6 +247,26 @@ public class CollapsibleTextView extends LinearLayout implements View.OnClickLis
         super.setOrientation(orientation);
     }
 
+    @Override
+    public void setPadding(int left, int top, int right, int bottom) {
+        super.setPadding(left, top, right, bottom);
+        invalidateMetricsStyle();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    @Override
+    public void setPaddingRelative(int start, int top, int end, int bottom) {
+        super.setPaddingRelative(start, top, end, bottom);
+        invalidateMetricsStyle();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    @Override
+    public void onRtlPropertiesChanged(int layoutDirection) {
+        super.onRtlPropertiesChanged(layoutDirection);
+        invalidateMetricsStyle();
+    }
+
     @Override
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
@@ -260,6 +289,16 @@ public class CollapsibleTextView extends LinearLayout implements View.OnClickLis
 
         hasChanged = false;
 
+        // Use the precomputed metrics when available to skip the overflow detection pass
+        if (MeasureSpec.getMode(widthMeasureSpec) != MeasureSpec.UNSPECIFIED) {
+            final CollapseMetrics metrics =
+                CollapseMetrics.find(this, tvBody.getText(), MeasureSpec.getSize(widthMeasureSpec));
+            if (metrics != null) {
+                measureWithMetrics(metrics, widthMeasureSpec, heightMeasureSpec);
+                return;
+            }
+        }
+
         // Initially we suppose that everything fits
         tvExpand.setVisibility(GONE);
         ivGradient.setVisibility(GONE);
@@ -297,6 +336,28 @@ public class CollapsibleTextView extends LinearLayout implements View.OnClickLis
         }
     }
 
+    private void measureWithMetrics(@NonNull CollapseMetrics metrics, final int widthMeasureSpec,
+                                    final int heightMeasureSpec) {
+        final boolean showExpand = metrics.isOverflowing() && isCollapsed;
+        tvExpand.setVisibility(showExpand ? VISIBLE : GONE);
+        ivGradient.setVisibility(showExpand ? VISIBLE : GONE);
+        tvBody.setMaxLines(showExpand ? visibleLineCount : Integer.MAX_VALUE);
+        setOnClickListener(metrics.isOverflowing() ? this : null);
+        setClickable(metrics.isOverflowing());
+
+        super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+
+        if (!metrics.isOverflowing()) {
+            return;
+        }
+
+        textHeightWithMaxLines = metrics.getTextHeightWithMaxLines();
+        if (isCollapsed) {
+            tvBody.post(marginUpdateRunnable);
+            collapsedHeight = getMeasuredHeight();
+        }
+    }
+
     private int getFullTextViewHeight(@NonNull TextView textView) {
         final int lineCount = textView.getLayout().getLineCount();
         final int textHeight = textView.getLayout().getLineTop(lineCount);
@@ -370,11 +431,13 @@ public class CollapsibleTextView extends LinearLayout implements View.OnClickLis
         if (listener != null) {
             listener.onExpandStateChanged(tvBody, !isCollapsed);
         }
-        if (isCollapsed) {
-            final ViewGroup.LayoutParams layoutParams = getLayoutParams();
-            layoutParams.height = ViewGroup.LayoutParams.WRAP_CONTENT;
-            setLayoutParams(layoutParams);
+        if (!isCollapsed) {
+            // Let the text take its own height, the animated one may differ from the laid out text
+            tvBody.setMaxHeight(Integer.MAX_VALUE);
         }
+        final ViewGroup.LayoutParams layoutParams = getLayoutParams();
+        layoutParams.height = ViewGroup.LayoutParams.WRAP_CONTENT;
+        setLayoutParams(layoutParams);
     }
 
     //region UTILS
@@ -399,6 +462,38 @@ public class CollapsibleTextView extends LinearLayout implements View.OnClickLis
     public boolean isCollapsed() {
         return isCollapsed;
     }
+
+    int getTextHeightWithMaxLines() {
+        return textHeightWithMaxLines;
+    }
+
+    int getVisibleLineCount() {
+        return visibleLineCount;
+    }
+
+    TextView getBodyTextView() {
+        return tvBody;
+    }
+
+    TextView getExpandView() {
+        return tvExpand;
+    }
+
+    ImageView getGradientView() {
+        return ivGradient;
+    }
+
+    @NonNull
+    CollapseMetrics.Style getMetricsStyle() {
+        if (metricsStyle == null) {
+            metricsStyle = CollapseMetrics.Style.capture(this);
+        }
+        return metricsStyle;
+    }
+
+    private void invalidateMetricsStyle() {
+        metricsStyle = null;
+    }
     //endregion
 
     //region ATTRIBUTE SETTERS
@@ -408,6 +503,7 @@ public class CollapsibleTextView extends LinearLayout implements View.OnClickLis
         }
 
         visibleLineCount = count;
+        invalidateMetricsStyle();
     }
 
     public void setAnimationDuration(long animationLengthMillis) {
@@ -431,6 +527,7 @@ public class CollapsibleTextView extends LinearLayout implements View.OnClickLis
 
     public void setTextSize(@DimenRes int spSize) {
         tvBody.setTextSize(TypedValue.COMPLEX_UNIT_SP, spSize);
+        invalidateMetricsStyle();
     }
 
     public void shouldShowIcon(boolean shouldShowIcon) {
@@ -473,6 +570,7 @@ public class CollapsibleTextView extends LinearLayout implements View.OnClickLis
 
     public void setExpandButtonTextSize(@DimenRes int textSizeSP) {
         tvExpand.setTextSize(TypedValue.COMPLEX_UNIT_SP, textSizeSP);
+        invalidateMetricsStyle();
     }
 
     public void setTransitionGradient(@DrawableRes int transitionGradientId) {